@@ -0,0 +1,139 @@
+package gov.usgs.cida.miscutils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+/**
+ * A standalone timing comparison of parseToXML with and without the
+ * full-document normalizeDocument() pass, plus a third mode that parses
+ * without normalizing and then moves the root into another Document with
+ * importNormalized(), the scoped path the full pass was standing in for.
+ *
+ * This lives in the separate bench/ source root so that it is never compiled
+ * into, or picked as the entry point of, the library jar. Compile it against
+ * the library classes and run it with
+ * <code>java gov.usgs.cida.miscutils.NormalizationBenchmark
+ * [xmlFile] [iterations]</code>. Without a file, a synthetic document of
+ * 50,000 namespaced records is generated. Timings are wall-clock means after
+ * a warmup round; they are indicative, not a substitute for a proper
+ * microbenchmark harness.
+ *
+ * @author Bill Blondeau <wblondeau@usgs.gov>
+ */
+class NormalizationBenchmark
+{
+
+    private NormalizationBenchmark ()
+    {
+        // private constructor enforces noninstantiability
+    }
+
+    public static void main (String[] args) throws IOException
+    {
+        byte[] xml = args.length > 0
+                ? Files.readAllBytes (Paths.get (args[0]))
+                : syntheticDocument (50000);
+        int iterations = args.length > 1 ? Integer.parseInt (args[1]) : 10;
+
+        System.out.println ("Document: " + xml.length + " bytes; "
+                + iterations + " iterations per mode");
+
+        for (boolean defer : new boolean[] { true, false })
+        {
+            // warmup round, discarded
+            time (xml, defer, false, 2);
+            time (xml, defer, true, 2);
+            timeImport (xml, defer, 2);
+
+            report ("parse only         defer=" + defer,
+                    time (xml, defer, false, iterations));
+            report ("parse + normalize  defer=" + defer,
+                    time (xml, defer, true, iterations));
+            report ("parse + import     defer=" + defer,
+                    timeImport (xml, defer, iterations));
+        }
+    }
+
+    /**
+     * @return mean nanoseconds per parse
+     */
+    private static long time (byte[] xml, boolean defer, boolean normalize,
+            int iterations)
+    {
+        long start = System.nanoTime ();
+        for (int indx = 0; indx < iterations; indx ++)
+        {
+            Document doc = MiscUtil.parseToXML (source (xml), defer, normalize);
+            // touch the tree so deferred expansion is not simply skipped
+            walk (doc);
+        }
+        return (System.nanoTime () - start) / iterations;
+    }
+
+    /**
+     * Parses without normalizing, then moves the root into a fresh Document
+     * with importNormalized(): the scoped path the full pass was standing in
+     * for.
+     *
+     * @return mean nanoseconds per parse and import
+     */
+    private static long timeImport (byte[] xml, boolean defer, int iterations)
+    {
+        long start = System.nanoTime ();
+        for (int indx = 0; indx < iterations; indx ++)
+        {
+            Document doc = MiscUtil.parseToXML (source (xml), defer, false);
+            Document target = MiscUtil.parseToXML (
+                    source ("<holder/>".getBytes (StandardCharsets.UTF_8)), defer, false);
+            Node copy = MiscUtil.importNormalized (target, doc.getDocumentElement ());
+            target.getDocumentElement ().appendChild (copy);
+            walk (target);
+        }
+        return (System.nanoTime () - start) / iterations;
+    }
+
+    private static InputSource source (byte[] xml)
+    {
+        return new InputSource (new ByteArrayInputStream (xml));
+    }
+
+    private static int walk (Node node)
+    {
+        int count = 1;
+        for (Node child = node.getFirstChild (); child != null;
+                child = child.getNextSibling ())
+        {
+            count += walk (child);
+        }
+        return count;
+    }
+
+    private static void report (String label, long meanNanos)
+    {
+        System.out.println (label + ": " + (meanNanos / 1000000.0) + " ms");
+    }
+
+    private static byte[] syntheticDocument (int records)
+    {
+        StringBuilder builder = new StringBuilder ();
+        builder.append ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        builder.append ("<wml:collection xmlns:wml=\"http://www.opengis.net/waterml/2.0\""
+                + " xmlns:gml=\"http://www.opengis.net/gml/3.2\">\n");
+        for (int indx = 0; indx < records; indx ++)
+        {
+            builder.append ("  <wml:point gml:id=\"p").append (indx)
+                    .append ("\" qualifier=\"A\">")
+                    .append ("<wml:time>2014-01-01T00:00:").append (indx % 60)
+                    .append ("Z</wml:time><wml:value>").append (indx * 0.25)
+                    .append ("</wml:value></wml:point>\n");
+        }
+        builder.append ("</wml:collection>\n");
+        return builder.toString ().getBytes (StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,75 @@
+package gov.usgs.cida.miscutils;
+
+/**
+ * The canonical querystring form of a parameter map, as produced by
+ * {@link MiscUtil#canonicalQuerystring(java.util.Map, boolean)}, together
+ * with a stable 64-bit hash of that string.
+ *
+ * The hash is 64-bit FNV-1a over the chars of the querystring (which, being
+ * urlencoded, are all ASCII, so this is the same as FNV-1a over its bytes).
+ * It is computed while the string is being built, and depends only on the
+ * string's content, so it is the same across JVMs and runs. It is intended
+ * for cheap cache-key and request-dedup lookups; since it can collide, the
+ * querystring itself remains the authority on equality.
+ *
+ * @author Bill Blondeau <wblondeau@usgs.gov>
+ */
+public final class CanonicalQuerystring
+{
+
+    static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String querystring;
+    private final long hash;
+
+    CanonicalQuerystring (String querystring, long hash)
+    {
+        this.querystring = querystring;
+        this.hash = hash;
+    }
+
+    /**
+     * @return the canonical querystring, without leading "?" or "&"
+     */
+    public String getQuerystring ()
+    {
+        return this.querystring;
+    }
+
+    /**
+     * @return the 64-bit FNV-1a hash of the querystring
+     */
+    public long getHash ()
+    {
+        return this.hash;
+    }
+
+    @Override
+    public boolean equals (Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if ( ! (obj instanceof CanonicalQuerystring))
+        {
+            return false;
+        }
+        CanonicalQuerystring other = (CanonicalQuerystring) obj;
+        return this.hash == other.hash
+                && this.querystring.equals (other.querystring);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        return (int) (this.hash ^ (this.hash >>> 32));
+    }
+
+    @Override
+    public String toString ()
+    {
+        return this.querystring;
+    }
+}
@@ -0,0 +1,781 @@
+package gov.usgs.cida.miscutils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A noninstantiable library class for copying, moving, and concatenating sets
+ * of files. Uncompressed copies go through FileChannel.transferTo(), which
+ * lets the operating system move the bytes without staging them on the heap;
+ * no character conversion is done anywhere, so these are safe for binary
+ * data.
+ *
+ * Copies and moves of many files run on a bounded pool of worker threads,
+ * and report per-file progress to an optional {@link TransferListener}.
+ * Existing target files are replaced. Every target is checked up front:
+ * an operation is rejected with IllegalArgumentException if two sources
+ * would be written to the same target, or if any target is the very file
+ * it would be read from.
+ *
+ * Nothing is written until every argument has been checked.
+ *
+ * If a copy fails, the copies still in progress are interrupted, and every
+ * target that was started but not finished is deleted; targets already
+ * finished are left in place. Directories created by a failed copyTree()
+ * are removed, except those still holding finished targets.
+ *
+ * @author Bill Blondeau <wblondeau@usgs.gov>
+ */
+public class FileTransferUtil
+{
+
+    private FileTransferUtil ()
+    {
+        // private constructor enforces noninstantiability
+    }
+
+    /**
+     * Receives notice of each completed file. For parallel operations this
+     * is called from the worker threads, so implementations must be
+     * thread-safe.
+     */
+    public interface TransferListener
+    {
+
+        /**
+         * @param source the file read
+         * @param target the file written
+         * @param bytes the number of bytes read from the source
+         * @param completed how many files of this operation have completed,
+         * including this one
+         * @param total how many files the operation comprises
+         */
+        void fileTransferred (Path source, Path target, long bytes,
+                int completed, int total);
+    }
+
+    /**
+     * Summary of a completed operation.
+     */
+    public static final class TransferReport
+    {
+        private final int fileCount;
+        private final long byteCount;
+        private final long elapsedNanos;
+
+        TransferReport (int fileCount, long byteCount, long elapsedNanos)
+        {
+            this.fileCount = fileCount;
+            this.byteCount = byteCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getFileCount ()
+        {
+            return this.fileCount;
+        }
+
+        /**
+         * @return total bytes read from the source files
+         */
+        public long getByteCount ()
+        {
+            return this.byteCount;
+        }
+
+        public long getElapsedNanos ()
+        {
+            return this.elapsedNanos;
+        }
+
+        /**
+         * @return source bytes per second of wall-clock time
+         */
+        public double getBytesPerSecond ()
+        {
+            if (this.elapsedNanos == 0)
+            {
+                return 0.0;
+            }
+            return this.byteCount * 1.0e9 / this.elapsedNanos;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return this.fileCount + " files, " + this.byteCount + " bytes in "
+                    + (this.elapsedNanos / 1000000) + " ms";
+        }
+    }
+
+    /**
+     * Copies each source file into the target directory under its own file
+     * name, optionally compressing it. Compressed copies get the scheme's
+     * conventional extension appended (".gz" or ".zip"; a ZIP archive holds
+     * the single file as its only entry).
+     *
+     * @param sources regular files to copy
+     * @param targetDirectory existing directory to copy them into
+     * @param scheme NONE, GZIP, or ZIP; the JDK provides no codec for the
+     * other schemes
+     * @param parallelism maximum number of files copied at once
+     * @param listener may be null
+     * @return
+     * @throws IllegalArgumentException if, among other things, two sources
+     * have the same file name, or a source would be copied onto itself
+     * @throws RuntimeException if any copy fails; copies not yet started are
+     * abandoned, and partially written targets are deleted
+     */
+    public static TransferReport copyFiles (Collection<Path> sources,
+            Path targetDirectory, CompressionScheme scheme, int parallelism,
+            TransferListener listener)
+            throws IllegalArgumentException, RuntimeException
+    {
+        checkSources (sources);
+        checkDirectory (targetDirectory, "targetDirectory");
+        checkScheme (scheme);
+        checkParallelism (parallelism);
+
+        List<Path[]> pairs = new ArrayList<> (sources.size ());
+        for (Path source : sources)
+        {
+            Path target = targetDirectory.resolve (
+                    targetName (source.getFileName ().toString (), scheme));
+            pairs.add (new Path[] { source, target });
+        }
+
+        return runParallel (pairs, Collections.<Path>emptyList (), scheme, false,
+                parallelism, listener);
+    }
+
+    /**
+     * Copies every regular file under the source directory into the same
+     * relative location under the target directory, creating subdirectories
+     * as needed and optionally compressing each file as described for
+     * {@link #copyFiles}.
+     *
+     * @param sourceDirectory existing directory to copy from
+     * @param targetDirectory directory to copy into; created if absent. It
+     * may not be inside the source directory, nor contain it.
+     * @param scheme NONE, GZIP, or ZIP
+     * @param parallelism maximum number of files copied at once
+     * @param listener may be null
+     * @return
+     * @throws IllegalArgumentException
+     * @throws RuntimeException if the tree cannot be read, or any copy fails;
+     * partially written targets are deleted
+     */
+    public static TransferReport copyTree (Path sourceDirectory,
+            final Path targetDirectory, final CompressionScheme scheme,
+            int parallelism, TransferListener listener)
+            throws IllegalArgumentException, RuntimeException
+    {
+        checkDirectory (sourceDirectory, "sourceDirectory");
+        if (targetDirectory == null)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'targetDirectory' not permitted to be null.");
+        }
+        checkScheme (scheme);
+        checkParallelism (parallelism);
+
+        try
+        {
+            Path sourceReal = canonical (sourceDirectory);
+            Path targetReal = canonical (targetDirectory);
+            if (targetReal.startsWith (sourceReal) || sourceReal.startsWith (targetReal))
+            {
+                throw new IllegalArgumentException (
+                        "Parameters 'sourceDirectory' (" + sourceDirectory
+                        + ") and 'targetDirectory' (" + targetDirectory
+                        + ") overlap.");
+            }
+        }
+        catch (IOException iox)
+        {
+            throw new RuntimeException (
+                    "Problem resolving directory '" + sourceDirectory
+                    + "' or '" + targetDirectory + "'.", iox);
+        }
+
+        final Path sourceRoot = sourceDirectory;
+        final List<Path[]> pairs = new ArrayList<> ();
+        // collected in walk order, so every parent precedes its children;
+        // nothing is created until the pairs have been checked
+        final List<Path> directories = new ArrayList<> ();
+        try
+        {
+            Files.walkFileTree (sourceRoot, new SimpleFileVisitor<Path> ()
+            {
+                @Override
+                public FileVisitResult preVisitDirectory (Path dir,
+                        BasicFileAttributes attrs)
+                {
+                    directories.add (
+                            targetDirectory.resolve (sourceRoot.relativize (dir).toString ()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile (Path file,
+                        BasicFileAttributes attrs)
+                {
+                    if (attrs.isRegularFile ())
+                    {
+                        Path relative = sourceRoot.relativize (file);
+                        Path target = targetDirectory
+                                .resolve (relative.toString ())
+                                .resolveSibling (targetName (
+                                        file.getFileName ().toString (), scheme));
+                        pairs.add (new Path[] { file, target });
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException iox)
+        {
+            throw new RuntimeException (
+                    "Problem reading directory tree '" + sourceDirectory + "'.", iox);
+        }
+
+        return runParallel (pairs, directories, scheme, false, parallelism, listener);
+    }
+
+    /**
+     * Moves each source file into the target directory under its own file
+     * name. Within one file system this is a rename; across file systems the
+     * content is copied and the source deleted.
+     *
+     * @param sources regular files to move
+     * @param targetDirectory existing directory to move them into
+     * @param parallelism maximum number of files moved at once
+     * @param listener may be null
+     * @return
+     * @throws IllegalArgumentException if, among other things, two sources
+     * have the same file name, or a source is already in the target
+     * directory
+     * @throws RuntimeException if any move fails; moves not yet started are
+     * abandoned. Unlike copies, a failed move's target is never deleted,
+     * since its source may already be gone.
+     */
+    public static TransferReport moveFiles (Collection<Path> sources,
+            Path targetDirectory, int parallelism, TransferListener listener)
+            throws IllegalArgumentException, RuntimeException
+    {
+        checkSources (sources);
+        checkDirectory (targetDirectory, "targetDirectory");
+        checkParallelism (parallelism);
+
+        List<Path[]> pairs = new ArrayList<> (sources.size ());
+        for (Path source : sources)
+        {
+            Path target = targetDirectory.resolve (source.getFileName ().toString ());
+            pairs.add (new Path[] { source, target });
+        }
+
+        return runParallel (pairs, Collections.<Path>emptyList (),
+                CompressionScheme.NONE, true, parallelism, listener);
+    }
+
+    /**
+     * Writes the content of the source files, in List order, into a single
+     * target file. This is necessarily sequential.
+     *
+     * @param sources regular files to concatenate
+     * @param target the file to write; replaced if it exists. It may not be
+     * one of the sources.
+     * @param listener may be null
+     * @return
+     * @throws IllegalArgumentException
+     * @throws RuntimeException if any source cannot be read or the target
+     * cannot be written; the partial target is deleted
+     */
+    public static TransferReport concatenateFiles (List<Path> sources,
+            Path target, TransferListener listener)
+            throws IllegalArgumentException, RuntimeException
+    {
+        checkSources (sources);
+        if (target == null)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'target' not permitted to be null.");
+        }
+        for (Path source : sources)
+        {
+            if (isSameFile (source, target))
+            {
+                throw new IllegalArgumentException (
+                        "Parameter 'target' (" + target
+                        + ") is one of the sources.");
+            }
+        }
+
+        long start = System.nanoTime ();
+        long totalBytes = 0;
+        int completed = 0;
+        try (FileChannel out = FileChannel.open (target,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            for (Path source : sources)
+            {
+                long bytes;
+                try (FileChannel in = FileChannel.open (source, StandardOpenOption.READ))
+                {
+                    bytes = transferAll (in, out);
+                }
+                totalBytes += bytes;
+                completed ++;
+                if (listener != null)
+                {
+                    listener.fileTransferred (source, target, bytes,
+                            completed, sources.size ());
+                }
+            }
+        }
+        catch (IOException iox)
+        {
+            deleteQuietly (target);
+            throw new RuntimeException (
+                    "Problem concatenating files into '" + target + "'.", iox);
+        }
+
+        return new TransferReport (completed, totalBytes, System.nanoTime () - start);
+    }
+
+    /**
+     * Checks the pairs, creates any of the target directories that do not
+     * yet exist (parents first), and then runs the transfers.
+     */
+    private static TransferReport runParallel (final List<Path[]> pairs,
+            List<Path> directories, final CompressionScheme scheme,
+            final boolean move, int parallelism, final TransferListener listener)
+    {
+        checkPairs (pairs);
+
+        long start = System.nanoTime ();
+        List<Path> created = new ArrayList<> ();
+        try
+        {
+            for (Path directory : directories)
+            {
+                if ( ! Files.isDirectory (directory))
+                {
+                    Files.createDirectory (directory);
+                    created.add (directory);
+                }
+            }
+        }
+        catch (IOException iox)
+        {
+            removeDirectories (created);
+            throw new RuntimeException (
+                    "Problem creating target directory.", iox);
+        }
+
+        if (pairs.isEmpty ())
+        {
+            return new TransferReport (0, 0, System.nanoTime () - start);
+        }
+
+        final AtomicInteger completed = new AtomicInteger ();
+        final AtomicLong totalBytes = new AtomicLong ();
+        final Set<Path> started =
+                Collections.newSetFromMap (new ConcurrentHashMap<Path, Boolean> ());
+        final Set<Path> finished =
+                Collections.newSetFromMap (new ConcurrentHashMap<Path, Boolean> ());
+        boolean succeeded = false;
+        ExecutorService executor = Executors.newFixedThreadPool (
+                Math.min (parallelism, pairs.size ()));
+        try
+        {
+            // results are taken in completion order, so a failure is seen
+            // (and the remaining work abandoned) as soon as it happens
+            CompletionService<Path[]> results =
+                    new ExecutorCompletionService<> (executor);
+            for (final Path[] pair : pairs)
+            {
+                results.submit (new Callable<Path[]> ()
+                {
+                    @Override
+                    public Path[] call () throws IOException
+                    {
+                        started.add (pair[1]);
+                        long bytes;
+                        try
+                        {
+                            bytes = move
+                                    ? moveFile (pair[0], pair[1])
+                                    : copyFile (pair[0], pair[1], scheme);
+                        }
+                        catch (IOException iox)
+                        {
+                            throw new IOException ("Problem transferring '"
+                                    + pair[0] + "' to '" + pair[1] + "'.", iox);
+                        }
+                        finished.add (pair[1]);
+                        totalBytes.addAndGet (bytes);
+                        int done = completed.incrementAndGet ();
+                        if (listener != null)
+                        {
+                            listener.fileTransferred (pair[0], pair[1], bytes,
+                                    done, pairs.size ());
+                        }
+                        return pair;
+                    }
+                });
+            }
+
+            for (int indx = 0; indx < pairs.size (); indx ++)
+            {
+                try
+                {
+                    results.take ().get ();
+                }
+                catch (ExecutionException ex)
+                {
+                    Throwable cause = ex.getCause ();
+                    throw new RuntimeException (cause.getMessage (), cause);
+                }
+            }
+            succeeded = true;
+        }
+        catch (InterruptedException ix)
+        {
+            Thread.currentThread ().interrupt ();
+            throw new RuntimeException ("Interrupted during file transfer.", ix);
+        }
+        finally
+        {
+            // abandons whatever has not started if we are leaving on an error
+            executor.shutdownNow ();
+
+            // a failed move's source may already be gone, so its target is
+            // the only copy and must be kept
+            if ( ! succeeded && ! move && awaitTermination (executor))
+            {
+                for (Path target : started)
+                {
+                    if ( ! finished.contains (target))
+                    {
+                        deleteQuietly (target);
+                    }
+                }
+                removeDirectories (created);
+            }
+        }
+
+        return new TransferReport (completed.get (), totalBytes.get (),
+                System.nanoTime () - start);
+    }
+
+    /**
+     * Waits for the interrupted workers to stop, so their partial targets
+     * can be deleted safely. Preserves the caller's interrupt status.
+     *
+     * @return false if a further interrupt cut the wait short
+     */
+    private static boolean awaitTermination (ExecutorService executor)
+    {
+        boolean interrupted = Thread.interrupted ();
+        try
+        {
+            return executor.awaitTermination (Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException ix)
+        {
+            interrupted = true;
+            return false;
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread ().interrupt ();
+            }
+        }
+    }
+
+    private static long copyFile (Path source, Path target, CompressionScheme scheme)
+            throws IOException
+    {
+        if (scheme == CompressionScheme.NONE)
+        {
+            try (FileChannel in = FileChannel.open (source, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open (target,
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                return transferAll (in, out);
+            }
+        }
+
+        if (scheme == CompressionScheme.GZIP)
+        {
+            try (OutputStream fileOut = Files.newOutputStream (target);
+                    GZIPOutputStream gzout = new GZIPOutputStream (fileOut, 64 * 1024))
+            {
+                return copyInterruptibly (source, gzout);
+            }
+        }
+        else
+        {
+            try (OutputStream fileOut = new BufferedOutputStream (Files.newOutputStream (target));
+                    ZipOutputStream zipout = new ZipOutputStream (fileOut))
+            {
+                zipout.putNextEntry (new ZipEntry (source.getFileName ().toString ()));
+                long bytes = copyInterruptibly (source, zipout);
+                zipout.closeEntry ();
+                return bytes;
+            }
+        }
+    }
+
+    /**
+     * Copies the file to the stream. Unlike Files.copy(), this stops promptly
+     * when the thread is interrupted, as channel transfers do, so a failed
+     * batch does not wait for compressed copies to run to completion.
+     */
+    private static long copyInterruptibly (Path source, OutputStream out)
+            throws IOException
+    {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (InputStream in = Files.newInputStream (source))
+        {
+            int count;
+            while ((count = in.read (buffer)) > 0)
+            {
+                if (Thread.currentThread ().isInterrupted ())
+                {
+                    throw new InterruptedIOException (
+                            "Copy of '" + source + "' interrupted.");
+                }
+                out.write (buffer, 0, count);
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    private static long moveFile (Path source, Path target) throws IOException
+    {
+        long bytes = Files.size (source);
+        Files.move (source, target, StandardCopyOption.REPLACE_EXISTING);
+        return bytes;
+    }
+
+    /**
+     * Transfers the whole of the input channel to the output channel's
+     * current position. transferTo() may move fewer bytes than asked, so it
+     * is called until the input is exhausted. It moves nothing at all once
+     * the position is past the end of the file, so a source truncated
+     * during the copy is reported as an IOException rather than looping
+     * forever.
+     */
+    private static long transferAll (FileChannel in, FileChannel out)
+            throws IOException
+    {
+        long size = in.size ();
+        long position = 0;
+        while (position < size)
+        {
+            long count = in.transferTo (position, size - position, out);
+            if (count == 0)
+            {
+                long current = in.size ();
+                if (current < size)
+                {
+                    throw new IOException ("Source shrank from " + size
+                            + " to " + current + " bytes during the copy.");
+                }
+            }
+            position += count;
+        }
+        return size;
+    }
+
+    private static String targetName (String sourceName, CompressionScheme scheme)
+    {
+        switch (scheme)
+        {
+            case GZIP:
+                return sourceName + ".gz";
+            case ZIP:
+                return sourceName + ".zip";
+            default:
+                return sourceName;
+        }
+    }
+
+    /**
+     * Rejects any pair whose target is its own source, and any two pairs
+     * with the same target, before anything is written.
+     */
+    private static void checkPairs (List<Path[]> pairs)
+    {
+        Set<Path> targets = new HashSet<> ();
+        for (Path[] pair : pairs)
+        {
+            if ( ! targets.add (pair[1].toAbsolutePath ().normalize ()))
+            {
+                throw new IllegalArgumentException (
+                        "More than one source would be written to '"
+                        + pair[1] + "'.");
+            }
+            if (isSameFile (pair[0], pair[1]))
+            {
+                throw new IllegalArgumentException (
+                        "Source '" + pair[0] + "' and target '" + pair[1]
+                        + "' are the same file.");
+            }
+        }
+    }
+
+    private static boolean isSameFile (Path source, Path target)
+    {
+        if ( ! Files.exists (target))
+        {
+            return false;
+        }
+        try
+        {
+            return Files.isSameFile (source, target);
+        }
+        catch (IOException iox)
+        {
+            throw new RuntimeException (
+                    "Problem comparing '" + source + "' with '" + target + "'.", iox);
+        }
+    }
+
+    /**
+     * Returns the real path of the deepest existing ancestor, with the
+     * not-yet-existing remainder appended, so that symbolic links and
+     * relative forms cannot hide an overlap.
+     */
+    private static Path canonical (Path path) throws IOException
+    {
+        Path absolute = path.toAbsolutePath ().normalize ();
+        Path existing = absolute;
+        while (existing != null && ! Files.exists (existing))
+        {
+            existing = existing.getParent ();
+        }
+        if (existing == null)
+        {
+            return absolute;
+        }
+        return existing.toRealPath ().resolve (existing.relativize (absolute).toString ());
+    }
+
+    private static void deleteQuietly (Path file)
+    {
+        try
+        {
+            Files.deleteIfExists (file);
+        }
+        catch (IOException iox)
+        {
+            // nothing useful to be done; the failure is already being reported
+        }
+    }
+
+    /**
+     * Deletes the directories, children before parents. Any that still hold
+     * finished targets are not empty, so their deletion quietly fails and
+     * they are kept.
+     */
+    private static void removeDirectories (List<Path> directories)
+    {
+        for (int indx = directories.size () - 1; indx >= 0; indx --)
+        {
+            deleteQuietly (directories.get (indx));
+        }
+    }
+
+    private static void checkParallelism (int parallelism)
+    {
+        if (parallelism < 1)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'parallelism' must be positive. Passed: " + parallelism);
+        }
+    }
+
+    private static void checkSources (Collection<Path> sources)
+    {
+        if (sources == null)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'sources' not permitted to be null.");
+        }
+        for (Path source : sources)
+        {
+            if (source == null || ! Files.isRegularFile (source))
+            {
+                throw new IllegalArgumentException (
+                        "Parameter 'sources' contains '" + source
+                        + "', which is not a regular file.");
+            }
+        }
+    }
+
+    private static void checkDirectory (Path directory, String name)
+    {
+        if (directory == null || ! Files.isDirectory (directory))
+        {
+            throw new IllegalArgumentException (
+                    "Parameter '" + name + "' (" + directory
+                    + ") is not an existing directory.");
+        }
+    }
+
+    private static void checkScheme (CompressionScheme scheme)
+    {
+        if (scheme == null)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'scheme' not permitted to be null.");
+        }
+        if (scheme != CompressionScheme.NONE
+                && scheme != CompressionScheme.GZIP
+                && scheme != CompressionScheme.ZIP)
+        {
+            throw new IllegalArgumentException (
+                    "CompressionScheme " + scheme + " is not supported for "
+                    + "file transfer.");
+        }
+    }
+}
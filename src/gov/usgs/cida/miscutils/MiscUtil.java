@@ -1,5 +1,6 @@
 package gov.usgs.cida.miscutils;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
@@ -12,14 +13,21 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -29,7 +37,9 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
@@ -47,6 +57,13 @@ public class MiscUtil
         // private constructor enforces noninstantiability
     }
 
+    /**
+     * Xerces (and JDK-internal Xerces) feature controlling lazy DOM
+     * construction.
+     */
+    private static final String DEFER_NODE_EXPANSION_FEATURE =
+            "http://apache.org/xml/features/dom/defer-node-expansion";
+
     public static byte[] byteArrayFromStream (InputStream stream) throws IOException
     {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream ();
@@ -188,12 +205,21 @@ public class MiscUtil
      * XML parsing is a verbose go-around-your-elbow-to-get-to-your-thumb
      * annoyance.
      *
+     * The String is handed to the parser as characters, so no byte encoding
+     * step (and no dependence on the platform default charset) is involved.
+     * For large payloads prefer one of the stream, Reader, Path, or ByteBuffer
+     * overloads, which avoid materializing the document as a String at all.
+     *
      * IMPLEMENTATION NOTE: This method performs a normalizeDocument() on the
      * Document immediately before returning it. This was put in place due to
      * extremely odd behavior when adopting the root node of one Document into
      * another Document and appending the newly imported Node. (Extremely
      * incoherent data: attributes displaying the value of other attributes,
-     * missing data, etc.)
+     * missing data, etc.) Callers that want to skip the pass can use
+     * {@link #parseToXML(InputSource, boolean, boolean)} and move nodes with
+     * {@link #importNormalized(Document, Node)}, which copies rather than
+     * adopts but does not repeat the pass's namespace fixup; see its
+     * documentation for what is no longer done.
      *
      * @param xmlString must be a well-formed serialization of an XML Node,
      * whether intended as a Document or not.
@@ -206,13 +232,174 @@ public class MiscUtil
             throw new IllegalArgumentException ("Parameter 'xmlString' not permitted to be null, empty, or blank.");
         }
 
+        return parseToXML (new InputSource (new StringReader (xmlString)), true, true);
+    }
+
+    /**
+     * Returns the DOM Document parsed directly from a byte stream. The
+     * character encoding is detected by the parser from the byte order mark
+     * and/or the XML declaration, exactly as the XML specification requires,
+     * so the caller need not (and should not) decode the content first.
+     *
+     * The stream is read to its end but is not closed; closing it remains the
+     * responsibility of the calling code.
+     *
+     * Performs the same normalizeDocument() as {@link #parseToXML(String)}.
+     *
+     * @param instream the serialized XML content
+     * @return
+     */
+    public static Document parseToXML (InputStream instream)
+    {
+        if (instream == null)
+        {
+            throw new IllegalArgumentException ("Parameter 'instream' not permitted to be null.");
+        }
+
+        return parseToXML (new InputSource (instream), true, true);
+    }
+
+    /**
+     * Returns the DOM Document parsed from already-decoded character content.
+     * Any encoding named in the XML declaration is ignored, since the
+     * characters have already been decoded by the Reader.
+     *
+     * The Reader is read to its end but is not closed.
+     *
+     * Performs the same normalizeDocument() as {@link #parseToXML(String)}.
+     *
+     * @param reader the serialized XML content
+     * @return
+     */
+    public static Document parseToXML (Reader reader)
+    {
+        if (reader == null)
+        {
+            throw new IllegalArgumentException ("Parameter 'reader' not permitted to be null.");
+        }
+
+        return parseToXML (new InputSource (reader), true, true);
+    }
+
+    /**
+     * Returns the DOM Document parsed from the file at the passed Path. The
+     * file is streamed to the parser as bytes, so encoding detection follows
+     * the XML declaration. The Path's URI is supplied as the system ID, so
+     * relative references (external entities, DTDs) resolve against the
+     * file's own location.
+     *
+     * Performs the same normalizeDocument() as {@link #parseToXML(String)}.
+     *
+     * @param xmlFile path to a well-formed XML file
+     * @return
+     * @throws RuntimeException if the file cannot be opened or read
+     */
+    public static Document parseToXML (Path xmlFile)
+    {
+        if (xmlFile == null)
+        {
+            throw new IllegalArgumentException ("Parameter 'xmlFile' not permitted to be null.");
+        }
+
+        try (InputStream instream = new BufferedInputStream (Files.newInputStream (xmlFile)))
+        {
+            InputSource source = new InputSource (instream);
+            source.setSystemId (xmlFile.toUri ().toString ());
+            return parseToXML (source, true, true);
+        }
+        catch (IOException iox)
+        {
+            throw new RuntimeException (
+                    "Problem reading file '" + xmlFile + "'.", iox);
+        }
+    }
+
+    /**
+     * Returns the DOM Document parsed from the remaining bytes of the passed
+     * ByteBuffer (position through limit). The bytes are read in place; no
+     * copy of the buffer is made, which makes this suitable for memory-mapped
+     * files. The buffer's own position, limit, and mark are left untouched.
+     *
+     * Encoding detection follows the XML declaration.
+     *
+     * Performs the same normalizeDocument() as {@link #parseToXML(String)}.
+     *
+     * @param buffer the serialized XML content
+     * @return
+     */
+    public static Document parseToXML (ByteBuffer buffer)
+    {
+        if (buffer == null)
+        {
+            throw new IllegalArgumentException ("Parameter 'buffer' not permitted to be null.");
+        }
+
+        InputStream instream;
+        if (buffer.hasArray ())
+        {
+            instream = new ByteArrayInputStream (
+                    buffer.array (),
+                    buffer.arrayOffset () + buffer.position (),
+                    buffer.remaining ());
+        }
+        else
+        {
+            instream = new ByteBufferInputStream (buffer.duplicate ());
+        }
+
+        return parseToXML (new InputSource (instream), true, true);
+    }
+
+    /**
+     * The general form behind the other parseToXML overloads, for callers who
+     * need control over how the DOM is built.
+     *
+     * When <code>deferNodeExpansion</code> is true (the parser's default),
+     * nodes are materialized lazily as the tree is traversed, which is
+     * cheaper when only part of a large document is ever visited. When false,
+     * the full tree is built during the parse, which costs more up front but
+     * avoids the bookkeeping of the deferred representation when the whole
+     * document will be walked anyway. Parsers that do not recognize the
+     * feature ignore the setting.
+     *
+     * When <code>normalizeDocument</code> is false, the normalizeDocument()
+     * pass described on {@link #parseToXML(String)} is skipped. That pass
+     * walks the entire tree a second time and can cost as much as the parse
+     * itself. It was put in place for moving nodes into another Document;
+     * {@link #importNormalized(Document, Node)} covers that case for just the
+     * subtree being moved, with the limits its documentation describes.
+     *
+     * @param source the serialized XML content; the caller may set encoding,
+     * system ID, etc. on it as required
+     * @param deferNodeExpansion whether the parser should build the DOM lazily
+     * @param normalizeDocument whether to normalize the whole Document before
+     * returning it
+     * @return
+     */
+    public static Document parseToXML (InputSource source,
+            boolean deferNodeExpansion, boolean normalizeDocument)
+    {
+        if (source == null)
+        {
+            throw new IllegalArgumentException ("Parameter 'source' not permitted to be null.");
+        }
+
         Document retval = null;
-        // parse the string, create the Document
+        // parse the source, create the Document
         DocumentBuilderFactory fac = DocumentBuilderFactory.newInstance ();
+        try
+        {
+            fac.setFeature (DEFER_NODE_EXPANSION_FEATURE, deferNodeExpansion);
+        }
+        catch (ParserConfigurationException pce)
+        {
+            // not a Xerces-derived parser; it builds the DOM its own way
+        }
+
         try
         {
             DocumentBuilder db = fac.newDocumentBuilder ();
-            retval = db.parse (new InputSource (new ByteArrayInputStream (xmlString.getBytes ())));
+            retval = db.parse (source);
         }
         catch (ParserConfigurationException pce)
         {
@@ -224,11 +411,68 @@ public class MiscUtil
         }
         catch (IOException ex)
         {
-            // ...it's a String. In memory. ... what'd I do????
-            throw new RuntimeException ("No idea what's wrong.", ex);
+            throw new RuntimeException ("Problem reading XML content.", ex);
+        }
+
+        if (normalizeDocument)
+        {
+            retval.normalizeDocument ();
+        }
+        return retval;
+    }
+
+    /**
+     * Imports a deep copy of a Node from another Document into the target
+     * Document, and normalizes only the imported copy.
+     *
+     * This is a scoped, and deliberately narrower, alternative to normalizing
+     * every parsed Document. It copies the Node (rather than adopting it,
+     * which is where the incoherent-attribute behavior described on
+     * {@link #parseToXML(String)} was seen) and then calls Node.normalize()
+     * on the copy alone, which merges adjacent Text nodes and removes empty
+     * ones. The rest of either Document is not visited.
+     *
+     * It is NOT equivalent to normalizeDocument() on the subtree. In
+     * particular, no namespace fixup is done: missing namespace declarations
+     * are not added, conflicting prefixes are not rewritten, and redundant
+     * declarations are not removed. Nor are the other DOMConfiguration
+     * parameters (CDATA section handling, comment removal, entity
+     * expansion, etc.) applied. Content whose namespace declarations live
+     * on ancestors outside the copied Node relies on the serializer, or on
+     * a later normalizeDocument() of the target, to declare them.
+     *
+     * The returned Node has the target as its owner Document but is not yet
+     * attached to the tree; appending it is left to the calling code.
+     *
+     * @param target the Document that will own the copy
+     * @param node the Node to copy; may belong to any Document
+     * @return the normalized copy, owned by <code>target</code>
+     * @throws IllegalArgumentException if either parameter is null, or if the
+     * Node is of a type that cannot be imported (e.g. a Document)
+     */
+    public static Node importNormalized (Document target, Node node)
+    {
+        if (target == null)
+        {
+            throw new IllegalArgumentException ("Parameter 'target' not permitted to be null.");
+        }
+        if (node == null)
+        {
+            throw new IllegalArgumentException ("Parameter 'node' not permitted to be null.");
+        }
+
+        Node retval;
+        try
+        {
+            retval = target.importNode (node, true);
+        }
+        catch (DOMException dx)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'node' cannot be imported.", dx);
         }
 
-        retval.normalizeDocument ();
+        retval.normalize ();
         return retval;
     }
 
@@ -451,9 +695,59 @@ public class MiscUtil
                     "Parameter 'queryParams' not permitted to be null.");
         }
 
+        String parameterString = queryParams.isEmpty ()
+                ? ""
+                : MiscUtil.makeParameterString (queryParams);
+
+        return appendParameterString (endpointURL, parameterString, queryParams);
+    }
+
+    /**
+     * Creates a properly parameterized URL whose querystring is in the
+     * canonical form written by
+     * {@link #canonicalQuerystring(Map, boolean)}. Logically identical
+     * parameter maps therefore always produce the same URL, whatever their
+     * iteration order.
+     *
+     * Because the canonical form urlencodes parameter names as well as
+     * values, the URL can differ from the one {@link #parameterizeURL(URI,
+     * Map)} builds from the same map when a name contains characters that
+     * urlencoding changes.
+     *
+     * @param endpointURL
+     * @param queryParams
+     * @param sortValues whether multiple values for one name are also sorted;
+     * leave false if the server treats value order as significant
+     * @return
+     * @throws IllegalArgumentException
+     */
+    public static URL parameterizeCanonicalURL (
+            URI endpointURL,
+            Map<String, List<String>> queryParams,
+            boolean sortValues)
+            throws IllegalArgumentException
+    {
+        if (endpointURL == null)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'endpointURL' not permitted to be null.");
+        }
+        // throws IllegalargumentException
+        MiscUtil.validTarget (endpointURL);
+
+        // throws IllegalArgumentException on null queryParams
+        String parameterString =
+                canonicalQuerystring (queryParams, sortValues).getQuerystring ();
+
+        return appendParameterString (endpointURL, parameterString, queryParams);
+    }
+
+    private static URL appendParameterString (URI endpointURL,
+            String parameterString, Map<String, List<String>> queryParams)
+    {
         String urlstring = endpointURL.toString ();
 
-        if ( ! queryParams.isEmpty ())
+        if ( ! parameterString.isEmpty ())
         {
 
             if (urlstring.indexOf ("?") > 0)
@@ -465,7 +759,7 @@ public class MiscUtil
                 urlstring += "?";
             }
 
-            urlstring += MiscUtil.makeParameterString (queryParams);
+            urlstring += parameterString;
         }
 
         try
@@ -496,6 +790,9 @@ public class MiscUtil
      * <li>No urlencoding is performed on anything: the returned String is in a
      * fully decoded format. Any desired urlencoding is the responsibility of
      * the calling code.</li>
+     * <li>Parameters are written in the Map's iteration order. Use
+     * {@link #canonicalQuerystring(Map, boolean)} where logically identical
+     * maps must produce identical strings.</li>
      * </ul>
      *
      * @param queryParams
@@ -570,6 +867,119 @@ public class MiscUtil
         return retval;
     }
 
+    /**
+     * Writes a parameter map as a canonical querystring: one that is the same
+     * for every logically identical map, regardless of the Map's iteration
+     * order. Intended for cache keys and request deduplication.
+     * <ul>
+     * <li>Parameter names are trimmed and written in ascending (String
+     * natural) order. Names that are equal once trimmed (e.g. "a" and
+     * " a") are merged; their value Lists are concatenated in ascending order
+     * of the original, untrimmed names, so the result does not depend on
+     * iteration order.</li>
+     * <li>Values are trimmed. They keep their List order unless
+     * <code>sortValues</code> is true, in which case they too are written in
+     * ascending order.</li>
+     * <li>Names and values are both urlencoded as UTF-8, exactly as
+     * {@link #urlencode(String)} does. Note that this differs from
+     * {@link #makeParameterString(Map)} (and so from
+     * {@link #parameterizeURL(URI, Map)}), which encodes values but writes
+     * names as given: for names containing characters that urlencoding
+     * changes (spaces, "&", "=", non-ASCII, etc.) the two forms are not
+     * the same request.</li>
+     * <li>null names, null value Lists and null values are omitted
+     * entirely.</li>
+     * <li>no leading "?" or "&" separator is provided.</li>
+     * </ul>
+     *
+     * The returned object also carries a stable 64-bit hash of the
+     * querystring, accumulated as the string is written.
+     *
+     * @param queryParams
+     * @param sortValues
+     * @return
+     * @throws IllegalArgumentException
+     */
+    public static CanonicalQuerystring canonicalQuerystring (
+            Map<String, List<String>> queryParams, boolean sortValues)
+            throws IllegalArgumentException
+    {
+        if (queryParams == null)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'queryParams' not permitted to be null.");
+        }
+
+        // visit the raw names in sorted order, so that names which collide
+        // once trimmed are merged the same way whatever the Map's order
+        TreeMap<String, List<String>> byRawName = new TreeMap<> ();
+        for (Map.Entry<String, List<String>> entry : queryParams.entrySet ())
+        {
+            if (entry.getKey () != null && entry.getValue () != null)
+            {
+                byRawName.put (entry.getKey (), entry.getValue ());
+            }
+        }
+
+        // trimmed name -> trimmed, non-null values
+        TreeMap<String, List<String>> sorted = new TreeMap<> ();
+        for (Map.Entry<String, List<String>> entry : byRawName.entrySet ())
+        {
+            String name = entry.getKey ().trim ();
+            List<String> values = sorted.get (name);
+            if (values == null)
+            {
+                values = new ArrayList<> ();
+                sorted.put (name, values);
+            }
+            for (String val : entry.getValue ())
+            {
+                if (val != null)
+                {
+                    values.add (val.trim ());
+                }
+            }
+        }
+
+        StringBuilder retval = new StringBuilder ();
+        long hash = CanonicalQuerystring.FNV_OFFSET_BASIS;
+        String separator = "";
+        for (Map.Entry<String, List<String>> entry : sorted.entrySet ())
+        {
+            List<String> values = entry.getValue ();
+            if (sortValues)
+            {
+                Collections.sort (values);
+            }
+            String name = urlencode (entry.getKey ());
+            for (String val : values)
+            {
+                hash = appendHashed (retval, separator, hash);
+                hash = appendHashed (retval, name, hash);
+                hash = appendHashed (retval, "=", hash);
+                hash = appendHashed (retval, urlencode (val), hash);
+                separator = "&";
+            }
+        }
+
+        return new CanonicalQuerystring (retval.toString (), hash);
+    }
+
+    /**
+     * Appends to the builder, folding each appended char into the running
+     * FNV-1a hash, and returns the updated hash.
+     */
+    private static long appendHashed (StringBuilder builder, String str, long hash)
+    {
+        for (int indx = 0; indx < str.length (); indx ++)
+        {
+            char ch = str.charAt (indx);
+            builder.append (ch);
+            hash = (hash ^ ch) * CanonicalQuerystring.FNV_PRIME;
+        }
+        return hash;
+    }
+
     /**
      * All the benefits of urlencoding to UTF-8 without the checked exception
      *
@@ -623,4 +1033,47 @@ public class MiscUtil
 
         return retval.toString ();
     }
+
+    /**
+     * Presents the remaining content of a ByteBuffer as an InputStream,
+     * advancing the buffer's position as bytes are read. Used for direct
+     * (e.g. memory-mapped) buffers, which have no backing array to wrap.
+     */
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream (ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read ()
+        {
+            return buffer.hasRemaining () ? buffer.get () & 0xFF : -1;
+        }
+
+        @Override
+        public int read (byte[] bytes, int offset, int length)
+        {
+            if (length == 0)
+            {
+                return 0;
+            }
+            if ( ! buffer.hasRemaining ())
+            {
+                return -1;
+            }
+            int count = Math.min (length, buffer.remaining ());
+            buffer.get (bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available ()
+        {
+            return buffer.remaining ();
+        }
+    }
 }
@@ -0,0 +1,625 @@
+package gov.usgs.cida.miscutils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread-safe local cache of response bodies, keyed by the canonical URL
+ * that {@link MiscUtil#parameterizeCanonicalURL(URI, Map, boolean)} builds
+ * from an endpoint and a parameter map, so logically equivalent parameter
+ * maps share one cache entry regardless of the Maps' iteration order.
+ *
+ * <ul>
+ * <li>Entries expire a fixed time after they were fetched.</li>
+ * <li>In-memory content is bounded by total byte size, and evicted least
+ * recently used first. A body larger than the whole bound never enters
+ * memory, so it cannot flush everything else out; it goes straight to the
+ * spill directory, if there is one and it fits there, and is otherwise not
+ * cached.</li>
+ * <li>If a spill directory is configured, entries evicted from memory are
+ * written there (within their own byte bound) and read back by
+ * memory-mapping the file rather than by copying it onto the heap.</li>
+ * <li>Concurrent misses for the same key are coalesced: one thread fetches,
+ * the others wait for its result.</li>
+ * </ul>
+ *
+ * The actual retrieval is delegated to a {@link Fetcher}, so the cache can be
+ * exercised against an in-process stand-in rather than a live server.
+ *
+ * @author Bill Blondeau <wblondeau@usgs.gov>
+ */
+public class URLContentCache
+{
+
+    /**
+     * Retrieves the body of the resource at a URL. Implementations must be
+     * safe to call from multiple threads.
+     */
+    public interface Fetcher
+    {
+
+        byte[] fetch (URL url) throws IOException;
+    }
+
+    /**
+     * Fetches by opening a stream on the URL itself.
+     */
+    public static final Fetcher URL_STREAM_FETCHER = new Fetcher ()
+    {
+        @Override
+        public byte[] fetch (URL url) throws IOException
+        {
+            try (InputStream instream = url.openStream ())
+            {
+                return MiscUtil.byteArrayFromStream (instream);
+            }
+        }
+    };
+
+    private final long maxMemoryBytes;
+    private final long ttlNanos;
+    private final Path spillDirectory;
+    private final long maxSpillBytes;
+    private final Fetcher fetcher;
+
+    // both maps are access-ordered, so iteration starts at the LRU entry;
+    // both are guarded by synchronization on this. Disk I/O (spill writes,
+    // mapping, deletion) is always done outside that lock.
+    private final LinkedHashMap<String, MemoryEntry> memory =
+            new LinkedHashMap<> (16, 0.75f, true);
+    private final LinkedHashMap<String, SpillEntry> spilled =
+            new LinkedHashMap<> (16, 0.75f, true);
+    private long memoryBytes = 0;
+    private long spillBytes = 0;
+    // bumped by invalidate() and clear(), so a spill write that was under way
+    // when either ran is discarded rather than resurrecting its entry
+    private long generation = 0;
+
+    private final ConcurrentMap<String, FutureTask<ByteBuffer>> inFlight =
+            new ConcurrentHashMap<> ();
+
+    /**
+     * Creates a memory-only cache that fetches with
+     * {@link #URL_STREAM_FETCHER}.
+     *
+     * @param maxMemoryBytes upper bound on the total size of cached content
+     * @param ttl how long an entry remains valid after it is fetched
+     * @param ttlUnit
+     */
+    public URLContentCache (long maxMemoryBytes, long ttl, TimeUnit ttlUnit)
+    {
+        this (maxMemoryBytes, ttl, ttlUnit, null, 0, URL_STREAM_FETCHER);
+    }
+
+    /**
+     * Creates a cache with full control over its bounds and its Fetcher.
+     *
+     * @param maxMemoryBytes upper bound on the total size of content held on
+     * the heap
+     * @param ttl how long an entry remains valid after it is fetched
+     * @param ttlUnit
+     * @param spillDirectory existing directory to hold content evicted from
+     * memory, or null for no disk spill. Each spill file gets a unique
+     * name, so the directory may be shared with other caches or left over
+     * from an earlier process; only files this instance wrote are ever read
+     * back. They are deleted when their entries are evicted or cleared.
+     * @param maxSpillBytes upper bound on the total size of spilled content;
+     * ignored if spillDirectory is null
+     * @param fetcher retrieves content on a cache miss
+     * @throws IllegalArgumentException
+     */
+    public URLContentCache (long maxMemoryBytes, long ttl, TimeUnit ttlUnit,
+            Path spillDirectory, long maxSpillBytes, Fetcher fetcher)
+            throws IllegalArgumentException
+    {
+        if (maxMemoryBytes < 0)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'maxMemoryBytes' must be nonnegative. Passed: "
+                    + maxMemoryBytes);
+        }
+        if (ttl <= 0)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'ttl' must be positive. Passed: " + ttl);
+        }
+        if (ttlUnit == null)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'ttlUnit' not permitted to be null.");
+        }
+        if (spillDirectory != null && ! Files.isDirectory (spillDirectory))
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'spillDirectory' (" + spillDirectory
+                    + ") is not an existing directory.");
+        }
+        if (maxSpillBytes < 0)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'maxSpillBytes' must be nonnegative. Passed: "
+                    + maxSpillBytes);
+        }
+        if (fetcher == null)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'fetcher' not permitted to be null.");
+        }
+
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.ttlNanos = ttlUnit.toNanos (ttl);
+        this.spillDirectory = spillDirectory;
+        this.maxSpillBytes = maxSpillBytes;
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Returns the cache key for an endpoint and parameter map: the string form
+     * of the URL {@link MiscUtil#parameterizeCanonicalURL(URI, Map, boolean)}
+     * builds from them. The values for each name keep their List order, since
+     * that order can be significant to the server.
+     *
+     * This key is also the URL fetched on a miss. The canonical form
+     * urlencodes parameter names as well as values, whereas
+     * {@link MiscUtil#parameterizeURL(URI, Map)} encodes only values; for
+     * names containing characters that urlencoding changes, the request sent
+     * through the cache therefore differs from the one parameterizeURL would
+     * build.
+     *
+     * @param endpointURL
+     * @param queryParams
+     * @return
+     * @throws IllegalArgumentException as for parameterizeCanonicalURL
+     */
+    public static String cacheKey (URI endpointURL,
+            Map<String, List<String>> queryParams)
+            throws IllegalArgumentException
+    {
+        return MiscUtil.parameterizeCanonicalURL (endpointURL, queryParams, false)
+                .toString ();
+    }
+
+    /**
+     * Returns the content of the resource, from the cache if a live entry is
+     * present and otherwise by fetching it (once, however many threads ask
+     * for it at the same time).
+     *
+     * The returned buffer is read-only and positioned at the start of the
+     * content. For spilled entries it is a memory-mapped view of the spill
+     * file. It can be handed directly to
+     * {@link MiscUtil#parseToXML(ByteBuffer)}.
+     *
+     * @param endpointURL
+     * @param queryParams
+     * @return
+     * @throws IllegalArgumentException as for parameterizeCanonicalURL
+     * @throws RuntimeException if the fetch fails
+     */
+    public ByteBuffer getContent (URI endpointURL,
+            Map<String, List<String>> queryParams)
+            throws IllegalArgumentException, RuntimeException
+    {
+        final String key = cacheKey (endpointURL, queryParams);
+
+        ByteBuffer cached = lookup (key);
+        if (cached != null)
+        {
+            return cached;
+        }
+
+        final PendingSpills pending = new PendingSpills ();
+        FutureTask<ByteBuffer> task = new FutureTask<> (new Callable<ByteBuffer> ()
+        {
+            @Override
+            public ByteBuffer call () throws IOException
+            {
+                // a leader that finished between our miss and our winning the
+                // in-flight slot will already have stored its result
+                ByteBuffer stored = lookup (key);
+                if (stored != null)
+                {
+                    return stored;
+                }
+
+                byte[] content = fetcher.fetch (new URL (key));
+                store (key, content, pending);
+                return ByteBuffer.wrap (content).asReadOnlyBuffer ();
+            }
+        });
+
+        FutureTask<ByteBuffer> existing = inFlight.putIfAbsent (key, task);
+        if (existing == null)
+        {
+            try
+            {
+                task.run ();
+            }
+            finally
+            {
+                inFlight.remove (key, task);
+            }
+            // the waiters were released when the task completed; writing out
+            // whatever the new content displaced is this thread's job alone
+            spillAll (pending);
+        }
+        else
+        {
+            task = existing;
+        }
+
+        try
+        {
+            // each caller gets its own position and limit
+            return task.get ().duplicate ();
+        }
+        catch (ExecutionException ex)
+        {
+            throw new RuntimeException (
+                    "Problem fetching '" + key + "'.", ex.getCause ());
+        }
+        catch (InterruptedException ix)
+        {
+            Thread.currentThread ().interrupt ();
+            throw new RuntimeException (
+                    "Interrupted while waiting for '" + key + "'.", ix);
+        }
+    }
+
+    /**
+     * Returns the content of the resource decoded as a String: the cached
+     * equivalent of fetching the URL and passing the stream to
+     * {@link MiscUtil#inputStream2String(InputStream, String)}.
+     *
+     * @param endpointURL
+     * @param queryParams
+     * @param encoding
+     * @return
+     * @throws IllegalArgumentException if the encoding is null or not valid,
+     * or as for parameterizeCanonicalURL
+     * @throws RuntimeException if the fetch fails
+     */
+    public String getString (URI endpointURL,
+            Map<String, List<String>> queryParams, String encoding)
+            throws IllegalArgumentException, RuntimeException
+    {
+        if (encoding == null)
+        {
+            throw new IllegalArgumentException (
+                    "Parameter 'encoding' not permitted to be null.");
+        }
+
+        Charset charset;
+        try
+        {
+            charset = Charset.forName (encoding);
+        }
+        catch (IllegalArgumentException iax)
+        {
+            throw new IllegalArgumentException ("Encoding not valid: ", iax);
+        }
+
+        return charset.decode (getContent (endpointURL, queryParams)).toString ();
+    }
+
+    /**
+     * Discards any cached content for the resource. A fetch already in
+     * progress is not affected.
+     *
+     * @param endpointURL
+     * @param queryParams
+     */
+    public void invalidate (URI endpointURL,
+            Map<String, List<String>> queryParams)
+    {
+        String key = cacheKey (endpointURL, queryParams);
+        SpillEntry removed;
+        synchronized (this)
+        {
+            removeMemory (key);
+            removed = detachSpilled (key);
+            generation ++;
+        }
+        if (removed != null)
+        {
+            deleteQuietly (removed.file);
+        }
+    }
+
+    /**
+     * Discards all cached content, including any spill files.
+     */
+    public void clear ()
+    {
+        List<SpillEntry> removed;
+        synchronized (this)
+        {
+            memory.clear ();
+            memoryBytes = 0;
+
+            removed = new ArrayList<> (spilled.values ());
+            spilled.clear ();
+            spillBytes = 0;
+            generation ++;
+        }
+        for (SpillEntry entry : removed)
+        {
+            deleteQuietly (entry.file);
+        }
+    }
+
+    private ByteBuffer lookup (String key)
+    {
+        SpillEntry onDisk;
+        boolean expired;
+        synchronized (this)
+        {
+            long now = System.nanoTime ();
+
+            MemoryEntry inMemory = memory.get (key);
+            if (inMemory != null)
+            {
+                if (now - inMemory.fetchedAt < ttlNanos)
+                {
+                    return ByteBuffer.wrap (inMemory.content).asReadOnlyBuffer ();
+                }
+                removeMemory (key);
+            }
+
+            onDisk = spilled.get (key);
+            if (onDisk == null)
+            {
+                return null;
+            }
+            expired = now - onDisk.fetchedAt >= ttlNanos;
+            if (expired)
+            {
+                detachSpilled (key);
+            }
+        }
+
+        if (expired)
+        {
+            deleteQuietly (onDisk.file);
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open (onDisk.file,
+                StandardOpenOption.READ))
+        {
+            // the mapping remains valid after the channel is closed
+            return channel.map (FileChannel.MapMode.READ_ONLY, 0,
+                    onDisk.length).asReadOnlyBuffer ();
+        }
+        catch (IOException iox)
+        {
+            // evicted and deleted since we released the lock, or unreadable;
+            // either way it is a miss
+            boolean stillCurrent;
+            synchronized (this)
+            {
+                stillCurrent = spilled.get (key) == onDisk;
+                if (stillCurrent)
+                {
+                    detachSpilled (key);
+                }
+            }
+            if (stillCurrent)
+            {
+                deleteQuietly (onDisk.file);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Puts fetched content in memory, evicting least recently used entries
+     * as needed. Disk writes are not done here: entries to be spilled
+     * (including the new content itself, if it is too big for memory) are
+     * handed back in <code>pending</code> for {@link #spillAll} to write
+     * once the fetch's waiters have been released.
+     */
+    private void store (String key, byte[] content, PendingSpills pending)
+    {
+        MemoryEntry fresh = new MemoryEntry (content, System.nanoTime ());
+        SpillEntry replaced;
+        synchronized (this)
+        {
+            removeMemory (key);
+            replaced = detachSpilled (key);
+
+            if (content.length > maxMemoryBytes)
+            {
+                pending.entries.add (
+                        new AbstractMap.SimpleImmutableEntry<> (key, fresh));
+            }
+            else
+            {
+                memory.put (key, fresh);
+                memoryBytes += content.length;
+
+                Iterator<Map.Entry<String, MemoryEntry>> lru =
+                        memory.entrySet ().iterator ();
+                while (memoryBytes > maxMemoryBytes && lru.hasNext ())
+                {
+                    Map.Entry<String, MemoryEntry> eldest = lru.next ();
+                    pending.entries.add (
+                            new AbstractMap.SimpleImmutableEntry<> (eldest));
+                    lru.remove ();
+                    memoryBytes -= eldest.getValue ().content.length;
+                }
+            }
+            pending.generation = generation;
+        }
+
+        if (replaced != null)
+        {
+            deleteQuietly (replaced.file);
+        }
+    }
+
+    private void spillAll (PendingSpills pending)
+    {
+        for (Map.Entry<String, MemoryEntry> entry : pending.entries)
+        {
+            spill (entry.getKey (), entry.getValue (), pending.generation);
+        }
+    }
+
+    /**
+     * Writes an entry evicted from memory to its own spill file, then
+     * publishes it, unless the cache was invalidated or cleared while the
+     * file was being written, or the key has since been stored again.
+     * Entries that have already expired are simply dropped.
+     */
+    private void spill (String key, MemoryEntry entry, long spillGeneration)
+    {
+        if (spillDirectory == null || entry.content.length > maxSpillBytes
+                || System.nanoTime () - entry.fetchedAt >= ttlNanos)
+        {
+            return;
+        }
+
+        Path file = null;
+        try
+        {
+            file = Files.createTempFile (spillDirectory, "urlcache-", ".bin");
+            Files.write (file, entry.content);
+        }
+        catch (IOException iox)
+        {
+            // the content is simply dropped, as it would be without a spill
+            if (file != null)
+            {
+                deleteQuietly (file);
+            }
+            return;
+        }
+
+        List<Path> doomed = new ArrayList<> ();
+        synchronized (this)
+        {
+            if (spillGeneration != generation
+                    || memory.containsKey (key) || spilled.containsKey (key))
+            {
+                doomed.add (file);
+            }
+            else
+            {
+                List<String> victims = new ArrayList<> ();
+                long projected = spillBytes + entry.content.length;
+                for (Map.Entry<String, SpillEntry> eldest : spilled.entrySet ())
+                {
+                    if (projected <= maxSpillBytes)
+                    {
+                        break;
+                    }
+                    victims.add (eldest.getKey ());
+                    projected -= eldest.getValue ().length;
+                }
+                for (String victim : victims)
+                {
+                    doomed.add (detachSpilled (victim).file);
+                }
+
+                spilled.put (key, new SpillEntry (file, entry.content.length,
+                        entry.fetchedAt));
+                spillBytes += entry.content.length;
+            }
+        }
+
+        for (Path doomedFile : doomed)
+        {
+            deleteQuietly (doomedFile);
+        }
+    }
+
+    private void removeMemory (String key)
+    {
+        MemoryEntry removed = memory.remove (key);
+        if (removed != null)
+        {
+            memoryBytes -= removed.content.length;
+        }
+    }
+
+    /**
+     * Removes the spill entry for the key from the index, and returns it so
+     * the caller can delete its file once outside the lock.
+     */
+    private SpillEntry detachSpilled (String key)
+    {
+        SpillEntry removed = spilled.remove (key);
+        if (removed != null)
+        {
+            spillBytes -= removed.length;
+        }
+        return removed;
+    }
+
+    private static void deleteQuietly (Path file)
+    {
+        try
+        {
+            Files.deleteIfExists (file);
+        }
+        catch (IOException iox)
+        {
+            // nothing useful to be done; the file is no longer referenced
+        }
+    }
+
+    /**
+     * Entries displaced by a store, awaiting their disk writes.
+     */
+    private static class PendingSpills
+    {
+        final List<Map.Entry<String, MemoryEntry>> entries = new ArrayList<> ();
+        long generation;
+    }
+
+    private static class MemoryEntry
+    {
+        final byte[] content;
+        final long fetchedAt;
+
+        MemoryEntry (byte[] content, long fetchedAt)
+        {
+            this.content = content;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static class SpillEntry
+    {
+        final Path file;
+        final long length;
+        final long fetchedAt;
+
+        SpillEntry (Path file, long length, long fetchedAt)
+        {
+            this.file = file;
+            this.length = length;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}